@@ -5,6 +5,7 @@
 
 package com.ryanjustus.amazonsqs;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClient;
@@ -17,12 +18,16 @@ import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents an AmazonSQS queue
@@ -48,10 +53,38 @@ public class BasicQueue implements TaskQueue{
  * </code>
  */
 
+    /** seconds shutdown() waits for retrieved tasks to be completed */
+    public static final int DEFAULT_SHUTDOWN_TIMEOUT=30;
+    /** seconds AmazonSQS keeps a message */
+    public static final int MESSAGE_LIFETIME=1209600;
+    /** longest visibility timeout (seconds) AmazonSQS allows, counted from when the message was received */
+    private static final int MAX_VISIBILITY_TIMEOUT=43200;
+    /** seconds kept free below MAX_VISIBILITY_TIMEOUT when deferring, to allow for clock and network delays */
+    private static final int VISIBILITY_MARGIN=60;
+    /**
+     * furthest ahead (seconds) a task can be scheduled.  One deferral short of
+     * MESSAGE_LIFETIME so the last deferral ends before AmazonSQS deletes the message
+     */
+    public static final int MAX_DELIVERY_DELAY=MESSAGE_LIFETIME-MAX_VISIBILITY_TIMEOUT;
+    /** number of not yet due tasks getTask defers before giving up and returning null */
+    private static final int MAX_DEFERRALS_PER_GET=10;
+
     private static Map<String,BasicQueue> queues = new HashMap<String,BasicQueue>();
     private static BasicQueue q;
     private static AmazonSQS sqs;
+    /** queues that have been created and not yet closed, the client is shut down when this reaches 0 */
+    private static int numOpen;
     private int defaultTimeout;
+    private final LatencyStats latencyStats = new LatencyStats();
+    private final String queueName;
+    /** number of getInstance calls not yet matched by a shutdown */
+    private int refCount;
+    private volatile boolean closing;
+    private volatile boolean closed;
+    /** the shared client, kept per queue so tasks still held after shutdown get a clear error */
+    private final AmazonSQS client;
+    /** tasks retrieved and not yet completed, cancelled or released */
+    private final Set<Task> outstanding = new HashSet<Task>();
 
     private String queueUrl;
 
@@ -61,34 +94,60 @@ public class BasicQueue implements TaskQueue{
      * @param secretKey Amazon secretKey
      * @return BasicTaskQueue associated with the AmazonSQS task queue
      */
-    public static BasicQueue getInstance(String queueName, String awsKey, String secretKey){
+    public static synchronized BasicQueue getInstance(String queueName, String awsKey, String secretKey){
         if(sqs==null){
              sqs = new AmazonSQSClient(new BasicAWSCredentials(awsKey,secretKey));
         }
+        return getInstance(queueName, sqs);
+    }
+
+    /**
+     * Creates the queue using an existing AmazonSQS client, for example one with
+     * a custom endpoint or an in-memory stand-in for testing.  All queues share
+     * a single client, so this fails if a different client is already in use.
+     * <br />
+     * Every call to getInstance should be matched by a call to shutdown.  The
+     * queue stays open until the last of them, and the client is shut down once
+     * every queue is closed.
+     * @param queueName AmazonSQS queue name
+     * @param client AmazonSQS client
+     * @return BasicTaskQueue associated with the AmazonSQS task queue
+     */
+    public static synchronized BasicQueue getInstance(String queueName, AmazonSQS client){
+        if(sqs==null){
+            sqs=client;
+        }else if(sqs!=client){
+            throw new IllegalStateException("a different AmazonSQS client is already in use");
+        }
         if(queues.get(queueName)==null){
             q = new BasicQueue(queueName);
             queues.put(queueName, q);
+            numOpen++;
         }
-        return queues.get(queueName);
+        BasicQueue queue = queues.get(queueName);
+        queue.refCount++;
+        return queue;
     }
     
 
 
     private BasicQueue (String queueName){
+        this.queueName=queueName;
+        this.client=sqs;
         defaultTimeout=180;
         CreateQueueRequest createQueueRequest = new CreateQueueRequest(queueName);
-        queueUrl = sqs.createQueue(createQueueRequest).getQueueUrl();
+        queueUrl = client.createQueue(createQueueRequest).getQueueUrl();
 
         //set some default values
         int messageTimeout=180;
-        int messageLifetime=1209600;
+        int messageLifetime=MESSAGE_LIFETIME;
         SetQueueAttributesRequest qa = new SetQueueAttributesRequest();
         Map<String,String> attrs = new TreeMap<String,String>();
         attrs.put("MessageRetentionPeriod", String.valueOf(messageLifetime));
         attrs.put("VisibilityTimeout", String.valueOf(messageTimeout));
         qa.setAttributes(attrs);
         qa.setQueueUrl(queueUrl);
-        sqs.setQueueAttributes(qa);
+        client.setQueueAttributes(qa);
     }
     
     /**
@@ -105,7 +164,7 @@ public class BasicQueue implements TaskQueue{
      * List will only contain 1 url.
      */
     public List<String> listQueueUrls() {
-        return sqs.listQueues().getQueueUrls();
+        return client.listQueues().getQueueUrls();
     }
 
     /**
@@ -122,7 +181,7 @@ public class BasicQueue implements TaskQueue{
      */
     void deleteQueue(String queueUrl){
         DeleteQueueRequest d = new DeleteQueueRequest(queueUrl);
-        sqs.deleteQueue(d);
+        client.deleteQueue(d);
     }
 
     /**
@@ -139,7 +198,7 @@ public class BasicQueue implements TaskQueue{
         Set<String> attrs = new HashSet<String>();
         attrs.add("ApproximateNumberOfMessages");
         GetQueueAttributesRequest a = new GetQueueAttributesRequest().withQueueUrl(queueUrl).withAttributeNames(attrs);
-        Map<String,String> result = sqs.getQueueAttributes(a).getAttributes();
+        Map<String,String> result = client.getQueueAttributes(a).getAttributes();
         int num = Integer.parseInt(result.get("ApproximateNumberOfMessages"));
         return  num;
     }
@@ -152,12 +211,81 @@ public class BasicQueue implements TaskQueue{
      */
     public void addTask(Map<String,String>attrs)
     {
+        addTask(attrs, null, null);
+    }
+
+    /**
+     * Add a task to the TaskQueue tagged with a trace id.  The trace id is
+     * available from Task.getTraceId when the task is retrieved
+     * @param attrs
+     * @param traceId
+     */
+    public void addTask(Map<String,String>attrs, String traceId)
+    {
+        addTask(attrs, traceId, null);
+    }
+
+    /**
+     * Add a task to the TaskQueue that won't be returned by getTask before
+     * deliveryTime.
+     * <br />
+     * The message is sent straight away.  When getTask receives it early it is
+     * hidden again with a visibility timeout of up to 12 hours, so a scheduled
+     * task costs a receive and a visibility change per 12 hours of delay rather
+     * than repeated polling.  The delay can't be longer than MAX_DELIVERY_DELAY.
+     * @param attrs
+     * @param deliveryTime earliest time the task should be retrieved, null for now
+     */
+    public void addTask(Map<String,String>attrs, Date deliveryTime)
+    {
+        addTask(attrs, null, deliveryTime);
+    }
+
+    /**
+     * Add a task with a trace id and delivery time, see addTask(Map, Date)
+     * @param attrs
+     * @param traceId
+     * @param deliveryTime
+     */
+    public void addTask(Map<String,String>attrs, String traceId, Date deliveryTime)
+    {
+        sendTask(attrs, traceId, deliveryTime, System.currentTimeMillis());
+    }
+
+    /**
+     * Puts a cancelled task back in the queue, keeping its original enqueue
+     * and delivery times so total latency covers every attempt and is still
+     * measured from the delivery time.  Called by Task.cancelTask
+     * @param t
+     */
+    void requeueTask(Task t)
+    {
+        long enqueued = t.getEnqueueTime()>0 ? t.getEnqueueTime() : System.currentTimeMillis();
+        Date delivery = t.getDeliveryTime()>0 ? new Date(t.getDeliveryTime()) : null;
+        Map<String,String> attrs = new TreeMap<String,String>();
+        for(String key: t.getAttrKeys()){
+            attrs.put(key, t.getAttrVal(key));
+        }
+        sendTask(attrs, t.getTraceId(), delivery, enqueued);
+    }
+
+    private void sendTask(Map<String,String>attrs, String traceId, Date deliveryTime, long enqueueTime)
+    {
+        long now = System.currentTimeMillis();
+        if(deliveryTime!=null && deliveryTime.getTime()-now>1000L*MAX_DELIVERY_DELAY){
+            throw new IllegalArgumentException("deliveryTime must be within " + MAX_DELIVERY_DELAY + " seconds");
+        }
         final Map m = new TreeMap<String,String>();
         m.putAll(attrs);
         Task t = Task.getInstance(m);
-        SendMessageRequest req = new SendMessageRequest().withQueueUrl(queueUrl).withMessageBody(t.toJson());
-        req.setMessageBody(t.toJson());
-        sqs.sendMessage(req);
+        t.setTraceId(traceId);
+        t.setEnqueueTime(enqueueTime);
+        if(deliveryTime!=null){
+            //stamped even when already past, getTask only defers future times
+            t.setDeliveryTime(deliveryTime.getTime());
+        }
+        SendMessageRequest req = new SendMessageRequest().withQueueUrl(queueUrl).withMessageBody(t.toMessageBody());
+        client.sendMessage(req);
     }
 
     /**
@@ -179,18 +307,47 @@ public class BasicQueue implements TaskQueue{
      */
     public Task getTask(int timeout, boolean keepAlive)
     {
+        if(closing){
+            return null;
+        }
         Task t = null;
         ReceiveMessageRequest req = new ReceiveMessageRequest(queueUrl);
         req.setVisibilityTimeout(timeout);
         req.setMaxNumberOfMessages(1);
-        List<Message> messages = sqs.receiveMessage(req).getMessages();
-        for(Message m: messages)
-        {
+        for(int deferred=0; t==null && deferred<MAX_DEFERRALS_PER_GET; deferred++){
+            long received = System.currentTimeMillis();
+            List<Message> messages = client.receiveMessage(req).getMessages();
+            if(messages.isEmpty()){
+                return null;
+            }
+            Message m = messages.get(0);
             t = Task.fromJson(m.getBody());
             t.setMessageId(m.getMessageId());
             t.setReceiptHandle(m.getReceiptHandle());
+            if(defer(t, received)){
+                t=null;
+            }
+        }
+        if(t!=null)
+        {
+            t.setReceiveTime(System.currentTimeMillis());
+            latencyStats.recordReceive(t);
             t.q=this;
             t.timeout=timeout;
+            synchronized(outstanding){
+                pruneExpired();
+                outstanding.add(t);
+            }
+            if(closing){
+                //shutdown started while we were waiting on AmazonSQS, give it straight back
+                try{
+                    releaseTask(t);
+                }catch(RuntimeException e){
+                    //already closed, it goes back to AmazonSQS after its timeout
+                    finished(t);
+                }
+                return null;
+            }
             if(keepAlive){
                 t.keepAlive(timeout);
             }
@@ -198,15 +355,100 @@ public class BasicQueue implements TaskQueue{
         return t;
     }
     
+    /**
+     * Hides a task that was received before its delivery time until it is due,
+     * or for as long as AmazonSQS allows if that is sooner.  AmazonSQS counts
+     * MAX_VISIBILITY_TIMEOUT from the receive, so the time since then and a
+     * margin are taken off the longest deferral.
+     * @param received time (millis) the receive request was sent
+     * @return true if the task was deferred
+     */
+    private boolean defer(Task t, long received)
+    {
+        long now = System.currentTimeMillis();
+        long remaining = t.getDeliveryTime()-now;
+        if(remaining<=0){
+            return false;
+        }
+        long sinceReceive = (now-received+999)/1000;
+        long longest = MAX_VISIBILITY_TIMEOUT-sinceReceive-VISIBILITY_MARGIN;
+        long seconds = Math.min((remaining+999)/1000, longest);
+        requestMoreTime(t, (int)seconds);
+        return true;
+    }
+
+    /**
+     * @return queue wait, processing and total latency of the tasks that have
+     * gone through this queue
+     */
+    public LatencyStats getLatencyStats()
+    {
+        return latencyStats;
+    }
+
     /**
      * Deletes the task from the queue.  This is pubicly called by Task.completeTask
      * @param t Task to delete
      */
     void deleteTask(Task t)
     {
+        checkOpen();
         final String receiptHandle = t.getReceiptHandle();
          DeleteMessageRequest d = new DeleteMessageRequest(queueUrl,receiptHandle);
-         sqs.deleteMessage(d);
+         client.deleteMessage(d);
+         finished(t);
+    }
+
+    /**
+     * Makes the task visible in AmazonSQS again straight away so another
+     * worker can retrieve it.  This is publicly called by Task.releaseTask
+     * @param t Task to release
+     */
+    void releaseTask(Task t)
+    {
+        checkOpen();
+        ChangeMessageVisibilityRequest c = new ChangeMessageVisibilityRequest(queueUrl, t.getReceiptHandle(), 0);
+        client.changeMessageVisibility(c);
+        finished(t);
+    }
+
+    /**
+     * Tasks still held after the queue is closed have already been released
+     * back to AmazonSQS (or will come back after their timeout), and the
+     * client may be shut down, so they can no longer be acknowledged.
+     */
+    private void checkOpen()
+    {
+        if(closed){
+            throw new IllegalStateException("queue " + queueName + " has been shut down, the task has been returned to AmazonSQS");
+        }
+    }
+
+    /**
+     * Stops tracking tasks that were abandoned without being completed and
+     * have already gone back to AmazonSQS.  Must hold the outstanding lock.
+     */
+    private void pruneExpired()
+    {
+        long now = System.currentTimeMillis();
+        for(Iterator<Task> itr = outstanding.iterator(); itr.hasNext();){
+            Task t = itr.next();
+            if(!t.isKeptAlive() && t.getReceiveTime()+1000L*t.timeout<now){
+                itr.remove();
+            }
+        }
+    }
+
+    /**
+     * stops tracking the task for shutdown
+     */
+    private void finished(Task t)
+    {
+        synchronized(outstanding){
+            if(outstanding.remove(t) && outstanding.isEmpty()){
+                outstanding.notifyAll();
+            }
+        }
     }
     
     /**
@@ -216,17 +458,127 @@ public class BasicQueue implements TaskQueue{
      */
     void requestMoreTime(Task t, final int extension)
     {
+        checkOpen();
         final String receiptHandle = t.getReceiptHandle();
          ChangeMessageVisibilityRequest c = new ChangeMessageVisibilityRequest(queueUrl, receiptHandle, extension);
-         sqs.changeMessageVisibility(c);
+         client.changeMessageVisibility(c);
  
     }
 
     /**
-     * Shutdown all threads associated with this queue
+     * Shutdown all threads associated with this queue, waiting up to
+     * DEFAULT_SHUTDOWN_TIMEOUT seconds for retrieved tasks to be completed.
+     * See shutdown(long, TimeUnit)
      */
     public void shutdown()
     {
-        sqs.shutdown();
+        shutdown(DEFAULT_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Shuts down the queue without leaving tasks stuck in AmazonSQS.
+     * getTask stops retrieving tasks and returns null, tasks already retrieved
+     * are given until the timeout to be completed or cancelled, and any still
+     * outstanding after that are made visible again straight away instead of
+     * waiting out their task timeout.
+     * <br />
+     * If getInstance was called more than once for this queue only the last
+     * shutdown does this, and the AmazonSQS client is only shut down after
+     * the last queue using it is closed.
+     * @param timeout
+     * @param unit
+     */
+    public void shutdown(long timeout, TimeUnit unit)
+    {
+        long deadline = System.currentTimeMillis()+unit.toMillis(timeout);
+        if(!unregister()){
+            return;
+        }
+        stopReceiving();
+        awaitTasks(deadline);
+        releaseOutstanding();
+        close();
+    }
+
+    /**
+     * drops one reference to the queue
+     * @return true if that was the last one and the queue should be shut down
+     */
+    boolean unregister()
+    {
+        synchronized(BasicQueue.class){
+            if(refCount<=0){
+                return false;
+            }
+            refCount--;
+            if(refCount>0){
+                return false;
+            }
+            queues.remove(queueName);
+            return true;
+        }
+    }
+
+    /**
+     * getTask returns null from now on
+     */
+    void stopReceiving()
+    {
+        closing=true;
+    }
+
+    /**
+     * waits until every retrieved task has been completed, cancelled or released
+     * @param deadline time (millis) to give up waiting
+     */
+    void awaitTasks(long deadline)
+    {
+        synchronized(outstanding){
+            long remaining;
+            while(!outstanding.isEmpty() && (remaining=deadline-System.currentTimeMillis())>0){
+                try{
+                    outstanding.wait(remaining);
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * makes every task still outstanding visible in AmazonSQS again
+     */
+    void releaseOutstanding()
+    {
+        List<Task> tasks;
+        synchronized(outstanding){
+            tasks = new ArrayList<Task>(outstanding);
+        }
+        if(!tasks.isEmpty()){
+            System.out.println("releasing " + tasks.size() + " unfinished tasks from " + queueName);
+        }
+        for(Task t: tasks){
+            try{
+                t.releaseTask();
+            }catch(AmazonClientException e){
+                System.out.println("could not release task " + t.getMessageId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * shuts down the AmazonSQS client if this was the last open queue
+     */
+    void close()
+    {
+        closed=true;
+        synchronized(BasicQueue.class){
+            numOpen--;
+            if(numOpen==0 && sqs!=null){
+                sqs.shutdown();
+                sqs=null;
+            }
+        }
     }
 }
\ No newline at end of file
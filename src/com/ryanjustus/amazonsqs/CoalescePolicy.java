@@ -0,0 +1,25 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ryanjustus.amazonsqs;
+
+import java.util.Map;
+
+/**
+ * Decides what happens when a <code>CoalescingQueue</code> receives a task with
+ * the same key as one that is still waiting to be sent.
+ * See CoalescingQueue.KEEP_FIRST, KEEP_LAST and MERGE for the common cases.
+ * @author ryan
+ */
+public interface CoalescePolicy {
+
+    /**
+     * @param pending attributes of the task already waiting to be sent
+     * @param incoming attributes of the task just added
+     * @return attributes of the single task to send in place of both. Return
+     * pending to drop the new task, or incoming to have it supersede the old one
+     */
+    public Map<String,String> merge(Map<String,String> pending, Map<String,String> incoming);
+}
@@ -0,0 +1,410 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ryanjustus.amazonsqs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>TaskQueue</code> that holds added tasks for a short window and
+ * combines the ones that share the same values for a set of key attributes
+ * before passing them on to another <code>TaskQueue</code>.  This cuts down the
+ * number of messages sent for producers that add the same task several times
+ * in a burst.
+ *<br />
+ * Tasks missing any of the key attributes, and tasks with a delivery time, are
+ * passed on straight away.  Everything except addTask goes straight to the
+ * wrapped queue.
+ *<br />
+ * A held task that fails to send is tried again after another window, up to
+ * MAX_FORWARD_ATTEMPTS times, after which it is dropped and counted as lost.
+ *<br />
+ * Held tasks are sent from a daemon thread, so it doesn't keep the JVM running.
+ * Call shutdown (or flush) before exiting, or tasks still being held are lost.
+ *<br />
+ * Usage Example: <br />
+ * <code>
+ * TaskQueue queue = new CoalescingQueue(BasicQueue.getInstance("testQueue","AmazonKey", "AmazonSecretKey"),<br />
+ * &nbsp;&nbsp; 5000, CoalescingQueue.KEEP_LAST, "url");<br />
+ * queue.addTask(m);<br />
+ * ...<br />
+ * queue.shutdown(); //sends anything still being held<br />
+ * </code>
+ * @author ryan
+ */
+public class CoalescingQueue implements TaskQueue{
+
+    /**
+     * keeps the task that was added first, later duplicates are dropped
+     */
+    public static final CoalescePolicy KEEP_FIRST = new CoalescePolicy(){
+        public Map<String, String> merge(Map<String, String> pending, Map<String, String> incoming) {
+            return pending;
+        }
+    };
+
+    /**
+     * keeps the task that was added last, it supersedes the earlier ones
+     */
+    public static final CoalescePolicy KEEP_LAST = new CoalescePolicy(){
+        public Map<String, String> merge(Map<String, String> pending, Map<String, String> incoming) {
+            return incoming;
+        }
+    };
+
+    /**
+     * combines the attributes of all the tasks, later values replace earlier ones
+     */
+    public static final CoalescePolicy MERGE = new CoalescePolicy(){
+        public Map<String, String> merge(Map<String, String> pending, Map<String, String> incoming) {
+            Map<String,String> m = new HashMap<String,String>(pending);
+            m.putAll(incoming);
+            return m;
+        }
+    };
+
+    /**
+     * number of times a held task is sent before it is given up on
+     */
+    public static final int MAX_FORWARD_ATTEMPTS=5;
+
+    private final TaskQueue target;
+    private final long window;
+    private final CoalescePolicy policy;
+    private final String[] keyAttrs;
+    private final Map<List<String>,Held> pending = new LinkedHashMap<List<String>,Held>();
+    private final ScheduledThreadPoolExecutor flusher;
+    private long numAdded;
+    private long numForwarded;
+    private long numCoalesced;
+    private long numLost;
+
+    /**
+     * @param target queue the surviving tasks are added to
+     * @param windowMillis how long a task is held waiting for duplicates
+     * @param policy decides which task survives when two share a key
+     * @param keyAttrs attributes that make two tasks duplicates when all their values are equal
+     */
+    public CoalescingQueue(TaskQueue target, long windowMillis, CoalescePolicy policy, String... keyAttrs)
+    {
+        if(keyAttrs.length==0){
+            throw new IllegalArgumentException("at least one key attribute is required");
+        }
+        if(windowMillis<0){
+            throw new IllegalArgumentException("windowMillis must be >= 0");
+        }
+        this.target=target;
+        this.window=windowMillis;
+        this.policy=policy;
+        this.keyAttrs=keyAttrs.clone();
+        flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+            public Thread newThread(Runnable r) {
+                //don't keep the JVM alive for a producer that never calls shutdown
+                Thread t = new Thread(r, "CoalescingQueue flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Holds the task for the coalescing window, or passes it on immediately if
+     * it is missing a key attribute
+     * @param attrs
+     */
+    public void addTask(Map<String, String> attrs) {
+        List<String> key = keyOf(attrs);
+        Map<String,String> copy = new HashMap<String,String>(attrs);
+        synchronized(this){
+            numAdded++;
+            if(key!=null){
+                hold(key, copy);
+                return;
+            }
+            numForwarded++;
+        }
+        target.addTask(copy);
+    }
+
+    /**
+     * Passes a scheduled task straight on to the wrapped queue, scheduled
+     * tasks are not coalesced
+     * @param attrs
+     * @param deliveryTime
+     */
+    public void addTask(Map<String, String> attrs, Date deliveryTime) {
+        synchronized(this){
+            numAdded++;
+            numForwarded++;
+        }
+        target.addTask(attrs, deliveryTime);
+    }
+
+    /**
+     * adds the task to the pending map, merging it with any task already held
+     * for the key.  Must hold the lock.
+     */
+    private void hold(List<String> key, Map<String,String> attrs)
+    {
+        Held existing = pending.get(key);
+        if(existing==null){
+            put(key, new Held(attrs));
+        }else{
+            numCoalesced++;
+            existing.attrs = policy.merge(existing.attrs, attrs);
+        }
+    }
+
+    /**
+     * holds h for key and schedules it to be sent.  Must hold the lock.
+     */
+    private void put(List<String> key, Held h)
+    {
+        pending.put(key, h);
+        flusher.schedule(new Flush(key, h), window, TimeUnit.MILLISECONDS);
+    }
+
+    private List<String> keyOf(Map<String,String> attrs)
+    {
+        String[] values = new String[keyAttrs.length];
+        for(int i=0;i<keyAttrs.length;i++){
+            values[i]=attrs.get(keyAttrs[i]);
+            if(values[i]==null){
+                return null;
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Sends every task currently being held without waiting for the window to end
+     */
+    public void flush()
+    {
+        List<Entry<List<String>,Held>> held;
+        synchronized(this){
+            held = new ArrayList<Entry<List<String>,Held>>(pending.entrySet());
+        }
+        for(Entry<List<String>,Held> e: held){
+            forward(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Sends the task held for key, unless it has already been sent.  If the send
+     * fails the task goes back into the pending map to be tried again after
+     * another window, until it has failed MAX_FORWARD_ATTEMPTS times.
+     */
+    private void forward(List<String> key, Held h)
+    {
+        synchronized(this){
+            if(pending.get(key)!=h){
+                return;
+            }
+            pending.remove(key);
+            numForwarded++;
+        }
+        try{
+            target.addTask(h.attrs);
+        }catch(RuntimeException e){
+            synchronized(this){
+                numForwarded--;
+                h.attempts++;
+                if(!flusher.isShutdown()){
+                    if(h.attempts>=MAX_FORWARD_ATTEMPTS){
+                        numLost++;
+                        System.out.println("dropping coalesced task " + key + " after " + h.attempts + " attempts: " + e);
+                        return;
+                    }
+                    System.out.println("failed to forward coalesced task, retrying: " + e);
+                    Held newer = pending.get(key);
+                    if(newer!=null){
+                        newer.attrs = policy.merge(h.attrs, newer.attrs);
+                        newer.attempts = Math.max(newer.attempts, h.attempts);
+                    }else{
+                        put(key, h);
+                    }
+                    return;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * the task held for a key
+     */
+    private static class Held
+    {
+        Map<String,String> attrs;
+        int attempts;
+
+        Held(Map<String,String> attrs)
+        {
+            this.attrs=attrs;
+        }
+    }
+
+    private class Flush implements Runnable
+    {
+        private final List<String> key;
+        private final Held h;
+
+        Flush(List<String> key, Held h)
+        {
+            this.key=key;
+            this.h=h;
+        }
+
+        public void run() {
+            try{
+                forward(key, h);
+            }catch(RuntimeException e){
+                synchronized(CoalescingQueue.this){
+                    numLost++;
+                }
+                System.out.println("dropping coalesced task " + key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return number of tasks passed to addTask
+     */
+    public synchronized long getNumAdded()
+    {
+        return numAdded;
+    }
+
+    /**
+     * @return number of tasks sent on to the wrapped queue
+     */
+    public synchronized long getNumForwarded()
+    {
+        return numForwarded;
+    }
+
+    /**
+     * @return number of tasks that were merged into or dropped in favor of another task
+     */
+    public synchronized long getNumCoalesced()
+    {
+        return numCoalesced;
+    }
+
+    /**
+     * @return number of held tasks that could not be sent
+     */
+    public synchronized long getNumLost()
+    {
+        return numLost;
+    }
+
+    /**
+     * @return number of tasks currently being held
+     */
+    public synchronized int getNumPending()
+    {
+        return pending.size();
+    }
+
+    /**
+     * @return the queue the tasks are passed on to
+     */
+    public TaskQueue getTarget()
+    {
+        return target;
+    }
+
+    public void setDefaultTaskTimeout(int timeout) {
+        target.setDefaultTaskTimeout(timeout);
+    }
+
+    public List<String> listQueueUrls() {
+        return target.listQueueUrls();
+    }
+
+    /**
+     * Discards the tasks being held and deletes the wrapped queue
+     */
+    public void deleteQueue() {
+        synchronized(this){
+            pending.clear();
+        }
+        target.deleteQueue();
+    }
+
+    /**
+     * @return Approximate number of items in the wrapped queue plus the tasks being held
+     */
+    public int getNumInQueue() {
+        return target.getNumInQueue()+getNumPending();
+    }
+
+    public Task getTask() {
+        return target.getTask();
+    }
+
+    public Task getTask(int timeout, boolean keepAlive) {
+        return target.getTask(timeout, keepAlive);
+    }
+
+    /**
+     * Sends any tasks still being held, then shuts down the wrapped queue
+     */
+    public void shutdown() {
+        flushForShutdown();
+        target.shutdown();
+    }
+
+    /**
+     * Sends any tasks still being held, then shuts down the wrapped queue
+     * with the timeout
+     * @param timeout
+     * @param unit
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        flushForShutdown();
+        target.shutdown(timeout, unit);
+    }
+
+    /**
+     * Sends every held task outside the lock.  A failed send is reported and
+     * counted but doesn't stop the rest being sent.
+     */
+    private void flushForShutdown() {
+        flusher.shutdown();
+        List<Map<String,String>> held = new ArrayList<Map<String,String>>();
+        synchronized(this){
+            for(Held h: pending.values()){
+                held.add(h.attrs);
+            }
+            pending.clear();
+        }
+        for(Map<String,String> attrs: held){
+            try{
+                target.addTask(attrs);
+                synchronized(this){
+                    numForwarded++;
+                }
+            }catch(RuntimeException e){
+                synchronized(this){
+                    numLost++;
+                }
+                System.out.println("dropping coalesced task " + attrs + " on shutdown: " + e.getMessage());
+            }
+        }
+    }
+}
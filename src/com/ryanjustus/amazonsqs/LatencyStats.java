@@ -0,0 +1,256 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ryanjustus.amazonsqs;
+
+/**
+ * Latency distributions for the tasks that pass through a single AmazonSQS queue.
+ * Every <code>BasicQueue</code> keeps one of these, so for a <code>PriorityQueue</code>
+ * there is one per priority level.
+ *<br />
+ * Three distributions are kept (all in milliseconds):<br />
+ * queueWait - time between addTask and getTask<br />
+ * processing - time between getTask and completeTask<br />
+ * total - time between addTask and completeTask<br />
+ *<br />
+ * For tasks added with a delivery time, queueWait and total are measured from
+ * the delivery time rather than from addTask.<br />
+ *<br />
+ * The enqueue time is stamped by the producer, so queueWait and total include
+ * any clock skew between the producer and consumer machines.
+ * @author ryan
+ */
+public class LatencyStats {
+
+    private final Distribution queueWait = new Distribution();
+    private final Distribution processing = new Distribution();
+    private final Distribution total = new Distribution();
+    private long cancelled;
+
+    /**
+     * @return distribution of the time tasks waited in the queue before being retrieved
+     */
+    public Distribution getQueueWait()
+    {
+        return queueWait;
+    }
+
+    /**
+     * @return distribution of the time between retrieving and completing a task
+     */
+    public Distribution getProcessing()
+    {
+        return processing;
+    }
+
+    /**
+     * @return distribution of the time between adding and completing a task
+     */
+    public Distribution getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * @return number of tasks that were cancelled or released rather than completed
+     */
+    public synchronized long getNumCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Clears all the distributions
+     */
+    public void reset()
+    {
+        queueWait.reset();
+        processing.reset();
+        total.reset();
+        synchronized(this){
+            cancelled=0;
+        }
+    }
+
+    /**
+     * called by BasicQueue when a task is retrieved from AmazonSQS
+     * @param t
+     */
+    void recordReceive(Task t)
+    {
+        if(t.getEnqueueTime()>0){
+            queueWait.record(t.getReceiveTime()-t.getDueTime());
+        }
+    }
+
+    /**
+     * called by Task.completeTask
+     * @param t
+     */
+    void recordCompletion(Task t)
+    {
+        processing.record(t.getFinishTime()-t.getReceiveTime());
+        if(t.getEnqueueTime()>0){
+            total.record(t.getFinishTime()-t.getDueTime());
+        }
+    }
+
+    /**
+     * called by Task.cancelTask and Task.releaseTask
+     * @param t
+     */
+    synchronized void recordCancel(Task t)
+    {
+        cancelled++;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "queueWait[" + queueWait + "] processing[" + processing + "] total[" + total + "] cancelled=" + getNumCancelled();
+    }
+
+    /**
+     * A histogram of millisecond values.  Values are kept in buckets that are
+     * within 1/8th of their value so percentiles are approximate, but the
+     * memory used is fixed no matter how many values are recorded.
+     */
+    public static class Distribution
+    {
+        private static final int SUB_BUCKETS=8;
+        private static final int SUB_BITS=3;
+
+        private final long[] buckets = new long[(64-SUB_BITS)*SUB_BUCKETS];
+        private long count;
+        private long sum;
+        private long min;
+        private long max;
+
+        Distribution()
+        {
+            reset();
+        }
+
+        /**
+         * Adds a value to the distribution.  Negative values (clock skew) are
+         * recorded as 0.
+         * @param millis
+         */
+        synchronized void record(long millis)
+        {
+            if(millis<0){
+                millis=0;
+            }
+            buckets[indexOf(millis)]++;
+            count++;
+            sum+=millis;
+            if(millis<min){
+                min=millis;
+            }
+            if(millis>max){
+                max=millis;
+            }
+        }
+
+        /**
+         * Clears all the recorded values
+         */
+        public synchronized void reset()
+        {
+            for(int i=0;i<buckets.length;i++){
+                buckets[i]=0;
+            }
+            count=0;
+            sum=0;
+            min=Long.MAX_VALUE;
+            max=0;
+        }
+
+        /**
+         * @return number of values recorded
+         */
+        public synchronized long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return smallest value recorded, 0 if nothing has been recorded
+         */
+        public synchronized long getMin()
+        {
+            return count==0 ? 0 : min;
+        }
+
+        /**
+         * @return largest value recorded
+         */
+        public synchronized long getMax()
+        {
+            return max;
+        }
+
+        /**
+         * @return mean of the values recorded, 0 if nothing has been recorded
+         */
+        public synchronized double getMean()
+        {
+            return count==0 ? 0 : (double)sum/count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return approximate value at the percentile, 0 if nothing has been recorded
+         */
+        public synchronized long getPercentile(double percentile)
+        {
+            if(percentile<0 || percentile>100)
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            if(count==0){
+                return 0;
+            }
+            long rank = (long)Math.ceil(percentile/100*count);
+            if(rank<1){
+                rank=1;
+            }
+            long seen=0;
+            for(int i=0;i<buckets.length;i++){
+                seen+=buckets[i];
+                if(seen>=rank){
+                    return Math.max(min, Math.min(max, upperBoundOf(i)));
+                }
+            }
+            return max;
+        }
+
+        private static int indexOf(long v)
+        {
+            if(v<SUB_BUCKETS){
+                return (int)v;
+            }
+            int exp = 63-Long.numberOfLeadingZeros(v);
+            int sub = (int)((v>>>(exp-SUB_BITS)) & (SUB_BUCKETS-1));
+            return (exp-SUB_BITS+1)*SUB_BUCKETS+sub;
+        }
+
+        private static long upperBoundOf(int index)
+        {
+            if(index<SUB_BUCKETS){
+                return index;
+            }
+            int exp = index/SUB_BUCKETS+SUB_BITS-1;
+            long sub = index%SUB_BUCKETS;
+            return ((SUB_BUCKETS+sub+1)<<(exp-SUB_BITS))-1;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return "count=" + count + " min=" + getMin() + " mean=" + (long)getMean()
+                    + " p50=" + getPercentile(50) + " p90=" + getPercentile(90)
+                    + " p99=" + getPercentile(99) + " max=" + max;
+        }
+    }
+}
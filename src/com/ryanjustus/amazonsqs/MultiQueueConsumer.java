@@ -0,0 +1,506 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ryanjustus.amazonsqs;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumes tasks from many <code>TaskQueue</code>s with a small shared pool of
+ * threads, instead of one polling thread per queue.
+ *<br />
+ * Queues are served deficit round robin: each queue gets up to its weight in
+ * getTask calls per round, so a queue with weight 2 gets about twice the share of
+ * a queue with weight 1 when both have work.  A queue that comes back empty is
+ * skipped for an exponentially growing backoff, and goes back to being polled
+ * every round as soon as it returns a task again (or wake is called for it).
+ *<br />
+ * Usage Example: <br />
+ * <code>
+ * MultiQueueConsumer consumer = new MultiQueueConsumer(4);<br />
+ * consumer.register(BasicQueue.getInstance("customerA", "AmazonKey", "AmazonSecretKey"), 2);<br />
+ * consumer.register(BasicQueue.getInstance("customerB", "AmazonKey", "AmazonSecretKey"), 1);<br />
+ * consumer.start(new TaskHandler(){<br />
+ * &nbsp;&nbsp; public void handle(TaskQueue queue, Task t){<br />
+ * &nbsp;&nbsp;&nbsp;&nbsp; //do stuff with task<br />
+ * &nbsp;&nbsp; }<br />
+ * });<br />
+ * ...<br />
+ * consumer.shutdown(30, TimeUnit.SECONDS);<br />
+ * </code>
+ * @author ryan
+ */
+public class MultiQueueConsumer {
+
+    private final int numThreads;
+    private final Object lock = new Object();
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private int cursor;
+    private int taskTimeout;
+    private boolean keepAlive;
+    private long minBackoff;
+    private long maxBackoff;
+    private volatile boolean running;
+    private ExecutorService workers;
+
+    /**
+     * @param numThreads number of threads polling the queues and running the handler
+     */
+    public MultiQueueConsumer(int numThreads)
+    {
+        if(numThreads<1){
+            throw new IllegalArgumentException("numThreads must be at least 1");
+        }
+        this.numThreads=numThreads;
+        taskTimeout=180;
+        keepAlive=false;
+        minBackoff=100;
+        maxBackoff=20000;
+    }
+
+    /**
+     * Adds a queue to be consumed, or changes its weight if it was already registered
+     * @param queue
+     * @param weight getTask calls the queue gets per round, at least 1
+     */
+    public void register(TaskQueue queue, int weight)
+    {
+        if(weight<1){
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        synchronized(lock){
+            Entry e = find(queue);
+            if(e==null){
+                entries.add(new Entry(queue, weight));
+            }else{
+                e.weight=weight;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops consuming the queue.  Tasks already retrieved from it still finish.
+     * @param queue
+     */
+    public void unregister(TaskQueue queue)
+    {
+        synchronized(lock){
+            Entry e = find(queue);
+            if(e!=null){
+                int i = entries.indexOf(e);
+                entries.remove(i);
+                if(cursor>i){
+                    cursor--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends any backoff for the queue so it is polled in the next round, for
+     * example when the caller knows tasks have just been added to it
+     * @param queue
+     */
+    public void wake(TaskQueue queue)
+    {
+        synchronized(lock){
+            Entry e = find(queue);
+            if(e!=null){
+                e.emptyPolls=0;
+                e.readyAt=0;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Sets the timeout and keepAlive passed to getTask. Defaults are 180 seconds and false
+     * @param timeout
+     * @param keepAlive
+     */
+    public void setTaskTimeout(int timeout, boolean keepAlive)
+    {
+        synchronized(lock){
+            this.taskTimeout=timeout;
+            this.keepAlive=keepAlive;
+        }
+    }
+
+    /**
+     * Sets how long an empty queue is skipped for.  The first empty poll skips it
+     * for minMillis, doubling with each empty poll after that up to maxMillis.
+     * Defaults are 100 and 20000.
+     * @param minMillis
+     * @param maxMillis
+     */
+    public void setBackoff(long minMillis, long maxMillis)
+    {
+        if(minMillis<1 || maxMillis<minMillis){
+            throw new IllegalArgumentException("need 1 <= minMillis <= maxMillis");
+        }
+        synchronized(lock){
+            this.minBackoff=minMillis;
+            this.maxBackoff=maxMillis;
+        }
+    }
+
+    /**
+     * Starts the threads consuming the registered queues
+     * @param handler
+     */
+    public void start(TaskHandler handler)
+    {
+        synchronized(lock){
+            if(running){
+                throw new IllegalStateException("already started");
+            }
+            running=true;
+            workers = Executors.newFixedThreadPool(numThreads);
+            for(int i=0;i<numThreads;i++){
+                workers.execute(new Worker(handler));
+            }
+        }
+    }
+
+    /**
+     * Stops retrieving tasks and waits up to timeout for the handlers already
+     * running to finish.  The registered queues are not shut down.
+     * @param timeout
+     * @param unit
+     * @return true if every handler finished in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit)
+    {
+        ExecutorService w;
+        synchronized(lock){
+            running=false;
+            lock.notifyAll();
+            w=workers;
+        }
+        if(w==null){
+            return true;
+        }
+        w.shutdown();
+        try{
+            return w.awaitTermination(timeout, unit);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return share statistics for every registered queue, in registration order
+     */
+    public Map<TaskQueue,QueueStats> getStats()
+    {
+        synchronized(lock){
+            long total=0;
+            for(Entry e: entries){
+                total+=e.received;
+            }
+            Map<TaskQueue,QueueStats> stats = new LinkedHashMap<TaskQueue,QueueStats>();
+            for(Entry e: entries){
+                stats.put(e.queue, new QueueStats(e, total));
+            }
+            return stats;
+        }
+    }
+
+    private Entry find(TaskQueue queue)
+    {
+        for(Entry e: entries){
+            if(e.queue==queue){
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the queue the calling worker should poll next, waiting if every
+     * queue is backing off.
+     * @return null once the consumer is shut down
+     */
+    private Entry next() throws InterruptedException
+    {
+        synchronized(lock){
+            while(running){
+                long now = System.currentTimeMillis();
+                long earliest = Long.MAX_VALUE;
+                boolean anyReady = false;
+                for(int i=0;i<entries.size();i++){
+                    if(cursor>=entries.size()){
+                        cursor=0;
+                    }
+                    Entry e = entries.get(cursor);
+                    if(e.readyAt<=now){
+                        anyReady=true;
+                        if(!e.inTurn){
+                            //start of this queue's turn in the round
+                            e.inTurn=true;
+                            e.deficit+=e.weight;
+                        }
+                        if(e.deficit>=1){
+                            e.deficit--;
+                            return e;
+                        }
+                    }else{
+                        earliest=Math.min(earliest, e.readyAt);
+                    }
+                    endTurn(e);
+                }
+                if(anyReady){
+                    //every ready queue used up its turn, start the next round
+                    continue;
+                }
+                if(earliest==Long.MAX_VALUE){
+                    lock.wait();
+                }else{
+                    lock.wait(Math.max(1, earliest-now));
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * moves the round on from e if it is the current queue.  Must hold the lock.
+     */
+    private void endTurn(Entry e)
+    {
+        e.inTurn=false;
+        if(cursor<entries.size() && entries.get(cursor)==e){
+            cursor++;
+        }
+    }
+
+    private void polled(Entry e, Task t)
+    {
+        synchronized(lock){
+            if(t!=null){
+                e.received++;
+                if(e.emptyPolls>0){
+                    //snap back to polling every round
+                    e.emptyPolls=0;
+                    e.readyAt=0;
+                    lock.notifyAll();
+                }
+            }else{
+                e.emptyPollsTotal++;
+                backOff(e);
+            }
+        }
+    }
+
+    /**
+     * records a getTask call that threw.  The queue backs off the same as an
+     * empty one, but it isn't counted as an empty poll
+     */
+    private void pollFailed(Entry e)
+    {
+        synchronized(lock){
+            e.errors++;
+            backOff(e);
+        }
+    }
+
+    /**
+     * the queue gives up the rest of its turn and any credit, and is skipped
+     * for a backoff that doubles each time.  Must hold the lock.
+     */
+    private void backOff(Entry e)
+    {
+        e.emptyPolls++;
+        e.deficit=0;
+        int shift = Math.min(e.emptyPolls-1, 30);
+        e.readyAt = System.currentTimeMillis()+Math.min(maxBackoff, minBackoff<<shift);
+        endTurn(e);
+    }
+
+    private class Worker implements Runnable
+    {
+        private final TaskHandler handler;
+
+        Worker(TaskHandler handler)
+        {
+            this.handler=handler;
+        }
+
+        public void run() {
+            while(running){
+                Entry e;
+                int timeout;
+                boolean alive;
+                try{
+                    e = next();
+                }catch(InterruptedException ex){
+                    return;
+                }
+                if(e==null){
+                    return;
+                }
+                synchronized(lock){
+                    timeout=taskTimeout;
+                    alive=keepAlive;
+                }
+                Task t;
+                try{
+                    t = e.queue.getTask(timeout, alive);
+                }catch(RuntimeException ex){
+                    System.out.println("error polling queue: " + ex);
+                    ex.printStackTrace(System.out);
+                    pollFailed(e);
+                    continue;
+                }
+                polled(e, t);
+                if(t==null){
+                    continue;
+                }
+                boolean ok=false;
+                try{
+                    handler.handle(e.queue, t);
+                    if(t.getFinishTime()==0){
+                        t.completeTask();
+                    }
+                    ok=true;
+                }catch(Throwable ex){
+                    //an Error from the handler would otherwise end this worker for good
+                    System.out.println("task failed: " + ex);
+                    ex.printStackTrace(System.out);
+                }
+                synchronized(lock){
+                    if(ok){
+                        e.completed++;
+                    }else{
+                        e.failed++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * a registered queue and its scheduling state.  Guarded by lock
+     */
+    private static class Entry
+    {
+        final TaskQueue queue;
+        int weight;
+        int deficit;
+        boolean inTurn;
+        int emptyPolls;
+        long readyAt;
+        long received;
+        long completed;
+        long failed;
+        long errors;
+        long emptyPollsTotal;
+
+        Entry(TaskQueue queue, int weight)
+        {
+            this.queue=queue;
+            this.weight=weight;
+        }
+    }
+
+    /**
+     * Snapshot of how much of the consumer's work went to one queue
+     */
+    public static class QueueStats
+    {
+        private final int weight;
+        private final long received;
+        private final long completed;
+        private final long failed;
+        private final long errors;
+        private final long emptyPolls;
+        private final double share;
+        private final long backoffMillis;
+
+        private QueueStats(Entry e, long totalReceived)
+        {
+            weight=e.weight;
+            received=e.received;
+            completed=e.completed;
+            failed=e.failed;
+            errors=e.errors;
+            emptyPolls=e.emptyPollsTotal;
+            share = totalReceived==0 ? 0 : (double)e.received/totalReceived;
+            backoffMillis=Math.max(0, e.readyAt-System.currentTimeMillis());
+        }
+
+        /**
+         * @return weight the queue was registered with
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return number of tasks retrieved from the queue
+         */
+        public long getNumReceived() {
+            return received;
+        }
+
+        /**
+         * @return number of tasks the handler finished without throwing
+         */
+        public long getNumCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return number of tasks the handler threw on
+         */
+        public long getNumFailed() {
+            return failed;
+        }
+
+        /**
+         * @return number of getTask calls that threw
+         */
+        public long getNumErrors() {
+            return errors;
+        }
+
+        /**
+         * @return number of getTask calls that found the queue empty
+         */
+        public long getNumEmptyPolls() {
+            return emptyPolls;
+        }
+
+        /**
+         * @return fraction of all the tasks retrieved by the consumer that came from this queue
+         */
+        public double getShare() {
+            return share;
+        }
+
+        /**
+         * @return milliseconds until the queue is polled again, 0 if it isn't backing off
+         */
+        public long getBackoffMillis() {
+            return backoffMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "weight=" + weight + " received=" + received + " share=" + share
+                    + " completed=" + completed + " failed=" + failed + " errors=" + errors
+                    + " emptyPolls=" + emptyPolls + " backoff=" + backoffMillis;
+        }
+    }
+}
@@ -5,7 +5,9 @@
 
 package com.ryanjustus.amazonsqs;
 
+import com.amazonaws.services.sqs.AmazonSQS;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -51,6 +53,30 @@ public class PriorityQueue implements TaskQueue{
     int time;
 
     public PriorityQueue(String name,int levels,String key, String secretKey)
+    {
+        this(levels);
+        for(int i=0;i<levels;i++){
+            String queueName = name+i;
+            pq.add(BasicQueue.getInstance(queueName, key, secretKey));
+        }
+    }
+
+    /**
+     * Creates the priority queue using an existing AmazonSQS client
+     * @param name
+     * @param levels
+     * @param client
+     */
+    public PriorityQueue(String name,int levels,AmazonSQS client)
+    {
+        this(levels);
+        for(int i=0;i<levels;i++){
+            String queueName = name+i;
+            pq.add(BasicQueue.getInstance(queueName, client));
+        }
+    }
+
+    private PriorityQueue(int levels)
     {
         if(levels==0 || levels>100)
         {
@@ -61,10 +87,6 @@ public class PriorityQueue implements TaskQueue{
         defaultTimeout=180;
         maxNum=levels;
         pq = new ArrayList<BasicQueue>();
-        for(int i=0;i<levels;i++){
-            String queueName = name+i;
-            pq.add(BasicQueue.getInstance(queueName, key, secretKey));
-        }
     }
 
     /**
@@ -173,16 +195,59 @@ public class PriorityQueue implements TaskQueue{
     public void addTask(Map<String, String> attrs, int priorityLevel)
     {
         System.out.println("Pre priority level " + priorityLevel);
-        if(priorityLevel<0){
-            priorityLevel=0;
-        }else if(priorityLevel >= maxNum) {
-            priorityLevel=maxNum-1;
-        }
+        priorityLevel=clampLevel(priorityLevel);
         System.out.println("adding Task to PriorityLevel " + priorityLevel);
         BasicQueue q = pq.get(priorityLevel);
         q.addTask(attrs);
     }
 
+    /**
+     * adds a task into the queue with priority prioityLevel tagged with a trace id
+     * @param attrs
+     * @param priorityLevel
+     * @param traceId
+     */
+    public void addTask(Map<String, String> attrs, int priorityLevel, String traceId)
+    {
+        pq.get(clampLevel(priorityLevel)).addTask(attrs, traceId);
+    }
+
+    /**
+     * adds a task into the queue with priority prioityLevel that won't be
+     * returned by getTask before deliveryTime
+     * @param attrs
+     * @param priorityLevel
+     * @param deliveryTime earliest time the task should be retrieved, null for now
+     */
+    public void addTask(Map<String, String> attrs, int priorityLevel, Date deliveryTime)
+    {
+        pq.get(clampLevel(priorityLevel)).addTask(attrs, deliveryTime);
+    }
+
+    /**
+     * @param priorityLevel
+     * @return priorityLevel moved into the range of levels this queue has
+     */
+    private int clampLevel(int priorityLevel)
+    {
+        if(priorityLevel<0){
+            return 0;
+        }else if(priorityLevel >= maxNum) {
+            return maxNum-1;
+        }
+        return priorityLevel;
+    }
+
+    /**
+     * adds a task into the priority 0 (highest priority) queue that won't be
+     * returned by getTask before deliveryTime
+     * @param attrs
+     * @param deliveryTime earliest time the task should be retrieved, null for now
+     */
+    public void addTask(Map<String, String> attrs, Date deliveryTime) {
+        addTask(attrs, 0, deliveryTime);
+    }
+
     /**
      * adds a task into the priority 0 (highest priority) queue
      * @param attrs
@@ -222,13 +287,43 @@ public class PriorityQueue implements TaskQueue{
     }
 
     /**
-     * Shuts down all the threads associated with the queue
+     * Shuts down all the threads associated with the queue, waiting up to
+     * BasicQueue.DEFAULT_SHUTDOWN_TIMEOUT seconds for retrieved tasks to be completed
      */
     public void shutdown()
     {
+        shutdown(BasicQueue.DEFAULT_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Shuts down every priority level together: all levels stop retrieving
+     * tasks first, then share the one timeout for retrieved tasks to be
+     * completed before the unfinished ones are returned to AmazonSQS.
+     * See BasicQueue.shutdown(long, TimeUnit)
+     * @param timeout
+     * @param unit
+     */
+    public void shutdown(long timeout, TimeUnit unit)
+    {
+        long deadline = System.currentTimeMillis()+unit.toMillis(timeout);
         shutdownQueueMonitor();
+        List<BasicQueue> closing = new ArrayList<BasicQueue>();
         for(BasicQueue q : pq){
-            q.shutdown();
+            if(q.unregister()){
+                closing.add(q);
+            }
+        }
+        for(BasicQueue q : closing){
+            q.stopReceiving();
+        }
+        for(BasicQueue q : closing){
+            q.awaitTasks(deadline);
+        }
+        for(BasicQueue q : closing){
+            q.releaseOutstanding();
+        }
+        for(BasicQueue q : closing){
+            q.close();
         }
         System.out.println("everything shut down");
     }
@@ -267,6 +362,16 @@ public class PriorityQueue implements TaskQueue{
         return pq.get(priorityLevel).getNumInQueue();
     }
 
+    /**
+     * @param priorityLevel
+     * @return latency distributions for the tasks at the priorityLevel
+     */
+    public LatencyStats getLatencyStats(int priorityLevel) {
+        if(priorityLevel<0|| priorityLevel>=this.maxNum)
+            throw new IllegalArgumentException("prioity out of range " + 0 + "-" + maxNum);
+        return pq.get(priorityLevel).getLatencyStats();
+    }
+
     private class QueueMonitor implements Runnable
     {
         public void run() {
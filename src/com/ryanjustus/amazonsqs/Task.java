@@ -27,9 +27,19 @@ public final class Task{
     private static Gson gson = new Gson();
 
     private static final Type mapType = new TypeToken<Map<String,String>>(){}.getType();
+    /** reserved message body keys used to carry tracing data along with the attributes */
+    static final String ENQUEUE_TIME_KEY = "__enqueueTime";
+    static final String TRACE_ID_KEY = "__traceId";
+    static final String DELIVERY_TIME_KEY = "__deliveryTime";
     private Map<String,String> attrs;
     private String messageId;
     private String receiptHandle;
+    private String traceId;
+    private long enqueueTime;
+    private long deliveryTime;
+    private long receiveTime;
+    private long finishTime;
+    private boolean cancelled;
     int timeout;
     private ScheduledThreadPoolExecutor keepAliveExecutor;
     BasicQueue q;
@@ -42,6 +52,12 @@ public final class Task{
     {
         messageId=null;
         receiptHandle=null;
+        traceId=null;
+        enqueueTime=0;
+        deliveryTime=0;
+        receiveTime=0;
+        finishTime=0;
+        cancelled=false;
         timeout=60;
         this.attrs = new HashMap<String,String>();
         this.attrs.putAll(attrs);
@@ -54,6 +70,8 @@ public final class Task{
         if(keepAliveExecutor!=null)
             keepAliveExecutor.shutdown();
         q.deleteTask(this);
+        finishTime=System.currentTimeMillis();
+        q.getLatencyStats().recordCompletion(this);
     }
 
     /**
@@ -65,10 +83,28 @@ public final class Task{
     static Task fromJson(String json)
     {
         Map<String,String> attrMap = gson.fromJson(json,mapType);
+        String enqueued = attrMap.remove(ENQUEUE_TIME_KEY);
+        String trace = attrMap.remove(TRACE_ID_KEY);
+        String delivery = attrMap.remove(DELIVERY_TIME_KEY);
         Task t = new Task(attrMap);
+        t.enqueueTime=parseTime(enqueued);
+        t.deliveryTime=parseTime(delivery);
+        t.traceId=trace;
         return t;
     }
 
+    private static long parseTime(String time)
+    {
+        if(time==null){
+            return 0;
+        }
+        try{
+            return Long.parseLong(time);
+        }catch(NumberFormatException e){
+            return 0;
+        }
+    }
+
     /**
      * creates a task from attrs.  This is used by the TaskQueue when it is
      * saving a task to AmazonSQS
@@ -87,9 +123,26 @@ public final class Task{
     {
         if(keepAliveExecutor!=null)
             keepAliveExecutor.shutdown();
-        completeTask();
-        q.addTask(attrs);
+        q.deleteTask(this);
+        finishTime=System.currentTimeMillis();
+        cancelled=true;
+        q.getLatencyStats().recordCancel(this);
+        q.requeueTask(this);
     }
+    /**
+     * Gives the task back to AmazonSQS without completing it, so it can be
+     * retrieved again straight away rather than after the task timeout
+     */
+    public void releaseTask()
+    {
+        if(keepAliveExecutor!=null)
+            keepAliveExecutor.shutdown();
+        q.releaseTask(this);
+        finishTime=System.currentTimeMillis();
+        cancelled=true;
+        q.getLatencyStats().recordCancel(this);
+    }
+
     /**
      * Retrieves the message id that AmazonSQS assigns
      * @return
@@ -126,6 +179,84 @@ public final class Task{
         return receiptHandle;
     }
 
+    /**
+     * @return trace id passed to addTask, or null if none was given
+     */
+    public String getTraceId()
+    {
+        return traceId;
+    }
+
+    void setTraceId(String traceId)
+    {
+        this.traceId=traceId;
+    }
+
+    /**
+     * @return time (millis) the task was added to the queue by the producer,
+     * 0 if the message was added without a timestamp
+     */
+    public long getEnqueueTime()
+    {
+        return enqueueTime;
+    }
+
+    void setEnqueueTime(long time)
+    {
+        enqueueTime=time;
+    }
+
+    /**
+     * @return time (millis) the task was scheduled for by addTask, 0 if it was
+     * added for immediate delivery
+     */
+    public long getDeliveryTime()
+    {
+        return deliveryTime;
+    }
+
+    void setDeliveryTime(long time)
+    {
+        deliveryTime=time;
+    }
+
+    /**
+     * @return time (millis) the task became due, the later of its enqueue and delivery times
+     */
+    long getDueTime()
+    {
+        return Math.max(enqueueTime, deliveryTime);
+    }
+
+    /**
+     * @return time (millis) the task was retrieved from AmazonSQS
+     */
+    public long getReceiveTime()
+    {
+        return receiveTime;
+    }
+
+    void setReceiveTime(long time)
+    {
+        receiveTime=time;
+    }
+
+    /**
+     * @return time (millis) the task was completed or cancelled, 0 if it is still in progress
+     */
+    public long getFinishTime()
+    {
+        return finishTime;
+    }
+
+    /**
+     * @return true if the task was cancelled or released back to the queue
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
     /**
      * @param attr Name of the attribute
      * @return Value of the attribute
@@ -153,6 +284,25 @@ public final class Task{
         return gson.toJson(attrs);
     }
 
+    /**
+     * create the AmazonSQS message body, the JSON attributes plus the
+     * enqueue time and trace id
+     * @return
+     */
+    String toMessageBody()
+    {
+        Map<String,String> m = new TreeMap<String,String>();
+        m.putAll(attrs);
+        m.put(ENQUEUE_TIME_KEY, String.valueOf(enqueueTime));
+        if(traceId!=null){
+            m.put(TRACE_ID_KEY, traceId);
+        }
+        if(deliveryTime>0){
+            m.put(DELIVERY_TIME_KEY, String.valueOf(deliveryTime));
+        }
+        return gson.toJson(m);
+    }
+
     /**
      * @return Iterator over all the key/value attributes
      */
@@ -172,6 +322,14 @@ public final class Task{
         keepAliveExecutor.scheduleAtFixedRate(new KeepAliveTask(this), (900*timeout), (500*timeout), TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * @return true if the task is renewing its time with AmazonSQS
+     */
+    boolean isKeptAlive()
+    {
+        return keepAliveExecutor!=null && !keepAliveExecutor.isShutdown();
+    }
+
     private class KeepAliveTask implements Runnable
     {
         long startTime;
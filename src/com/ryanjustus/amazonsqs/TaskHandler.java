@@ -0,0 +1,23 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ryanjustus.amazonsqs;
+
+/**
+ * Processes the tasks retrieved by a <code>MultiQueueConsumer</code>
+ * @author ryan
+ */
+public interface TaskHandler {
+
+    /**
+     * Processes a task.  If this returns normally the task is completed, unless
+     * the handler already completed, cancelled or released it itself.  If it
+     * throws, the task is left to go back to the queue after its timeout.
+     * @param queue the queue the task was retrieved from
+     * @param t
+     * @throws Exception
+     */
+    public void handle(TaskQueue queue, Task t) throws Exception;
+}
@@ -5,8 +5,10 @@
 
 package com.ryanjustus.amazonsqs;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -37,6 +39,12 @@ public interface TaskQueue {
      * @param attrs Task attributes
      */
     public void addTask(Map<String,String>attrs);
+    /**
+     * add a Task to the TaskQueue that won't be returned by getTask before deliveryTime
+     * @param attrs Task attributes
+     * @param deliveryTime earliest time the task should be retrieved, null for now
+     */
+    public void addTask(Map<String,String>attrs, Date deliveryTime);
     /**
      * retrieves a task from the TaskQueue with the default timeout and keepAlive false
      * @return Task from AmazonSQS queue
@@ -55,5 +63,13 @@ public interface TaskQueue {
      * Shutdown all the threads associated with the queue.
      */
     public void shutdown();
+    /**
+     * Shutdown the queue, first giving tasks that have already been retrieved
+     * up to timeout to be completed.  Tasks still unfinished after that are
+     * returned to AmazonSQS straight away.
+     * @param timeout
+     * @param unit
+     */
+    public void shutdown(long timeout, TimeUnit unit);
 
 }
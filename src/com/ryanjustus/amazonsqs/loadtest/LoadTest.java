@@ -0,0 +1,488 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ryanjustus.amazonsqs.loadtest;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.ryanjustus.amazonsqs.BasicQueue;
+import com.ryanjustus.amazonsqs.LatencyStats;
+import com.ryanjustus.amazonsqs.PriorityQueue;
+import com.ryanjustus.amazonsqs.Task;
+import com.ryanjustus.amazonsqs.TaskQueue;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Command line load generator for measuring the end-to-end throughput of a
+ * <code>BasicQueue</code> or <code>PriorityQueue</code> configuration.
+ *<br />
+ * Runs a number of producer and consumer threads against either an in-memory
+ * <code>LocalSQS</code> or a real AmazonSQS endpoint and prints the results as
+ * a single JSON object so runs can be compared across releases.
+ *<br />
+ * Usage: <br />
+ * <code>
+ * java com.ryanjustus.amazonsqs.loadtest.LoadTest --producers=4 --consumers=8 --tasks=10000 --priorities=60,30,10
+ * </code>
+ *<br />
+ * Run with --help for the full list of options.
+ * @author ryan
+ */
+public class LoadTest {
+
+    private static final String[][] OPTIONS = {
+        {"endpoint", "local", "local for the in-memory LocalSQS, sqs for a real AmazonSQS endpoint"},
+        {"sqsEndpoint", "", "AmazonSQS endpoint url, defaults to the client default (sqs only)"},
+        {"awsKey", "", "Amazon key (sqs only)"},
+        {"secretKey", "", "Amazon secret key (sqs only)"},
+        {"queue", "loadtest", "queue name"},
+        {"producers", "1", "number of producer threads"},
+        {"consumers", "1", "number of consumer threads"},
+        {"tasks", "1000", "number of tasks to add, ignored when duration is set"},
+        {"duration", "0", "seconds to keep adding tasks, for soak tests"},
+        {"rate", "0", "maximum tasks added per second across all producers, 0 for no limit"},
+        {"drain", "60", "seconds to wait for consumers to finish after the producers stop"},
+        {"payloadBytes", "100", "size of the payload attribute added to every task"},
+        {"priorities", "1", "comma separated weights, one per priority level. A single weight uses a BasicQueue"},
+        {"taskTimeout", "30", "task timeout (seconds) passed to getTask"},
+        {"keepAlive", "false", "keepAlive passed to getTask"},
+        {"handlerMillis", "0", "time each consumer spends on a task"},
+        {"emptyPollMillis", "50", "time a consumer waits after getTask returns nothing, doubled (up to 32x) after consecutive receive errors"},
+        {"latencyMillis", "0", "latency added to every LocalSQS call (local only)"},
+        {"latencyJitterMillis", "0", "random extra latency added to every LocalSQS call (local only)"},
+        {"throttleRate", "0", "fraction of LocalSQS calls that are throttled (local only)"},
+        {"duplicateRate", "0", "fraction of LocalSQS receives that are delivered twice (local only)"},
+        {"out", "", "file to write the JSON results to, defaults to stdout"},
+    };
+
+    private final Map<String,String> config;
+    private final String runId;
+    private final Random random = new Random();
+    private double[] weights;
+    private TaskQueue queue;
+    private LocalSQS local;
+    private String payload;
+
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong redelivered = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong emptyReceives = new AtomicLong();
+    private final AtomicLong receiveErrors = new AtomicLong();
+    private final AtomicLong completeErrors = new AtomicLong();
+    private AtomicLongArray completedPerLevel;
+    private final Map<String,Boolean> seen = new ConcurrentHashMap<String,Boolean>();
+    private final Map<String,Boolean> completed = new ConcurrentHashMap<String,Boolean>();
+    private volatile boolean consuming;
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        Map<String,String> config;
+        try{
+            config = parseArgs(args);
+        }catch(IllegalArgumentException e){
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
+            return;
+        }
+        if(config==null){
+            usage();
+            return;
+        }
+        //the queues print their progress to System.out, keep it out of the results
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        String json = new LoadTest(config).run().toString();
+        if(config.get("out").length()>0){
+            Writer w = new FileWriter(config.get("out"));
+            try{
+                w.write(json);
+                w.write('\n');
+            }finally{
+                w.close();
+            }
+        }else{
+            out.println(json);
+        }
+    }
+
+    /**
+     * @param config option values, every option in OPTIONS must be present
+     */
+    public LoadTest(Map<String,String> config)
+    {
+        this.config = new TreeMap<String,String>(config);
+        this.runId = String.valueOf(System.currentTimeMillis());
+    }
+
+    /**
+     * Runs the load test
+     * @return results as JSON
+     * @throws InterruptedException
+     */
+    public JsonObject run() throws InterruptedException
+    {
+        setUp();
+        int numProducers = getInt("producers");
+        int numConsumers = getInt("consumers");
+        long start = System.currentTimeMillis();
+
+        consuming=true;
+        List<Thread> consumers = new ArrayList<Thread>();
+        for(int i=0;i<numConsumers;i++){
+            Thread t = new Thread(new Consumer(), "loadtest-consumer-"+i);
+            consumers.add(t);
+            t.start();
+        }
+        List<Thread> producers = new ArrayList<Thread>();
+        for(int i=0;i<numProducers;i++){
+            Thread t = new Thread(new Producer(start, numProducers), "loadtest-producer-"+i);
+            producers.add(t);
+            t.start();
+        }
+        for(Thread t: producers){
+            t.join();
+        }
+        long produced = System.currentTimeMillis();
+
+        long drainDeadline = produced + 1000L*getInt("drain");
+        while(completed.size()<sent.get() && System.currentTimeMillis()<drainDeadline){
+            Thread.sleep(100);
+        }
+        consuming=false;
+        for(Thread t: consumers){
+            t.join();
+        }
+        long end = System.currentTimeMillis();
+        JsonObject result = results(start, produced, end);
+        //the consumers have stopped, so there is nothing for shutdown to wait on
+        queue.shutdown(0, TimeUnit.SECONDS);
+        return result;
+    }
+
+    private void setUp()
+    {
+        String[] w = config.get("priorities").split(",");
+        weights = new double[w.length];
+        double sum=0;
+        for(int i=0;i<w.length;i++){
+            weights[i]=Double.parseDouble(w[i].trim());
+            sum+=weights[i];
+        }
+        for(int i=0;i<w.length;i++){
+            weights[i]/=sum;
+        }
+        completedPerLevel = new AtomicLongArray(weights.length);
+
+        AmazonSQS sqs;
+        if("local".equals(config.get("endpoint"))){
+            local = new LocalSQS();
+            local.setLatency(getInt("latencyMillis"), getInt("latencyJitterMillis"));
+            local.setThrottleRate(getDouble("throttleRate"));
+            local.setDuplicateRate(getDouble("duplicateRate"));
+            sqs = local;
+        }else if("sqs".equals(config.get("endpoint"))){
+            sqs = new AmazonSQSClient(new BasicAWSCredentials(config.get("awsKey"), config.get("secretKey")));
+            if(config.get("sqsEndpoint").length()>0){
+                sqs.setEndpoint(config.get("sqsEndpoint"));
+            }
+        }else{
+            throw new IllegalArgumentException("endpoint must be local or sqs");
+        }
+
+        if(weights.length==1){
+            queue = BasicQueue.getInstance(config.get("queue"), sqs);
+        }else{
+            queue = new PriorityQueue(config.get("queue"), weights.length, sqs);
+        }
+        for(int i=0;i<weights.length;i++){
+            latencyStats(i).reset();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<getInt("payloadBytes");i++){
+            sb.append('x');
+        }
+        payload = sb.toString();
+    }
+
+    private LatencyStats latencyStats(int level)
+    {
+        if(queue instanceof PriorityQueue){
+            return ((PriorityQueue)queue).getLatencyStats(level);
+        }
+        return ((BasicQueue)queue).getLatencyStats();
+    }
+
+    private int pickLevel()
+    {
+        double r;
+        synchronized(random){
+            r = random.nextDouble();
+        }
+        for(int i=0;i<weights.length-1;i++){
+            r-=weights[i];
+            if(r<0){
+                return i;
+            }
+        }
+        return weights.length-1;
+    }
+
+    private class Producer implements Runnable
+    {
+        private final long start;
+        private final long interval;
+
+        Producer(long start, int numProducers)
+        {
+            this.start=start;
+            double rate = getDouble("rate");
+            interval = rate>0 ? (long)(1000000000L*numProducers/rate) : 0;
+        }
+
+        public void run() {
+            long duration = 1000L*getInt("duration");
+            long tasks = getInt("tasks");
+            long next = System.nanoTime();
+            while(true){
+                if(duration>0 ? System.currentTimeMillis()-start>=duration : nextSeq.get()>=tasks){
+                    break;
+                }
+                if(interval>0){
+                    long wait = next-System.nanoTime();
+                    if(wait>0){
+                        sleep(wait/1000000, (int)(wait%1000000));
+                    }
+                    next+=interval;
+                }
+                String seq = String.valueOf(nextSeq.getAndIncrement());
+                if(duration<=0 && Long.parseLong(seq)>=tasks){
+                    break;
+                }
+                int level = pickLevel();
+                Map<String,String> attrs = new HashMap<String,String>();
+                attrs.put("runId", runId);
+                attrs.put("seq", seq);
+                attrs.put("level", String.valueOf(level));
+                attrs.put("payload", payload);
+                //retry errors such as throttling, give up on the task after 5 tries
+                for(int i=0;i<5;i++){
+                    try{
+                        if(queue instanceof PriorityQueue){
+                            ((PriorityQueue)queue).addTask(attrs, level);
+                        }else{
+                            queue.addTask(attrs);
+                        }
+                        sent.incrementAndGet();
+                        break;
+                    }catch(AmazonClientException e){
+                        sendErrors.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private class Consumer implements Runnable
+    {
+        public void run() {
+            int timeout = getInt("taskTimeout");
+            boolean keepAlive = Boolean.parseBoolean(config.get("keepAlive"));
+            long handlerMillis = getInt("handlerMillis");
+            long emptyPollMillis = getInt("emptyPollMillis");
+            int errorStreak = 0;
+            while(consuming){
+                Task t;
+                try{
+                    t = queue.getTask(timeout, keepAlive);
+                    errorStreak = 0;
+                }catch(RuntimeException e){
+                    //AmazonClientException, or a message body that doesn't parse.
+                    //back off so throttling isn't answered with a tight retry loop
+                    receiveErrors.incrementAndGet();
+                    errorStreak++;
+                    sleep(Math.max(1, emptyPollMillis)<<Math.min(errorStreak-1, 5), 0);
+                    continue;
+                }
+                if(t==null){
+                    emptyReceives.incrementAndGet();
+                    sleep(emptyPollMillis, 0);
+                    continue;
+                }
+                received.incrementAndGet();
+                String seq = t.getAttrVal("seq");
+                boolean ours = runId.equals(t.getAttrVal("runId"));
+                if(!ours){
+                    stale.incrementAndGet();
+                }else if(seen.put(seq, Boolean.TRUE)!=null){
+                    redelivered.incrementAndGet();
+                }
+                if(handlerMillis>0){
+                    sleep(handlerMillis, 0);
+                }
+                if(!complete(t)){
+                    continue;
+                }
+                if(ours && completed.put(seq, Boolean.TRUE)==null){
+                    completedPerLevel.incrementAndGet(Integer.parseInt(t.getAttrVal("level")));
+                }
+            }
+        }
+
+        /**
+         * completes the task, retrying errors such as throttling so they don't
+         * show up as redeliveries
+         * @return false if the task couldn't be completed
+         */
+        private boolean complete(Task t)
+        {
+            for(int i=0;i<5;i++){
+                try{
+                    t.completeTask();
+                    return true;
+                }catch(RuntimeException e){
+                    completeErrors.incrementAndGet();
+                }
+            }
+            return false;
+        }
+    }
+
+    private JsonObject results(long start, long produced, long end)
+    {
+        JsonObject r = new JsonObject();
+        r.addProperty("runId", runId);
+        JsonObject c = new JsonObject();
+        for(Map.Entry<String,String> e: config.entrySet()){
+            //credentials stay out of result files that get shared
+            if(!e.getKey().equals("secretKey") && !e.getKey().equals("awsKey")){
+                c.addProperty(e.getKey(), e.getValue());
+            }
+        }
+        r.add("config", c);
+        double elapsed = (end-start)/1000.0;
+        double producingSeconds = (produced-start)/1000.0;
+        r.addProperty("elapsedSeconds", elapsed);
+        r.addProperty("sent", sent.get());
+        r.addProperty("sendErrors", sendErrors.get());
+        r.addProperty("received", received.get());
+        r.addProperty("redelivered", redelivered.get());
+        r.addProperty("stale", stale.get());
+        r.addProperty("completed", completed.size());
+        r.addProperty("lost", sent.get()-completed.size());
+        r.addProperty("emptyReceives", emptyReceives.get());
+        r.addProperty("receiveErrors", receiveErrors.get());
+        r.addProperty("completeErrors", completeErrors.get());
+        r.addProperty("sendThroughput", producingSeconds>0 ? sent.get()/producingSeconds : 0);
+        r.addProperty("completeThroughput", elapsed>0 ? completed.size()/elapsed : 0);
+        JsonArray levels = new JsonArray();
+        for(int i=0;i<weights.length;i++){
+            LatencyStats stats = latencyStats(i);
+            JsonObject l = new JsonObject();
+            l.addProperty("level", i);
+            l.addProperty("completed", completedPerLevel.get(i));
+            l.add("queueWait", toJson(stats.getQueueWait()));
+            l.add("processing", toJson(stats.getProcessing()));
+            l.add("total", toJson(stats.getTotal()));
+            levels.add(l);
+        }
+        r.add("levels", levels);
+        if(local!=null){
+            r.addProperty("localThrottled", local.getNumThrottled());
+            r.addProperty("localDuplicates", local.getNumDuplicates());
+        }
+        return r;
+    }
+
+    private static JsonObject toJson(LatencyStats.Distribution d)
+    {
+        JsonObject o = new JsonObject();
+        o.addProperty("count", d.getCount());
+        o.addProperty("min", d.getMin());
+        o.addProperty("mean", d.getMean());
+        o.addProperty("p50", d.getPercentile(50));
+        o.addProperty("p90", d.getPercentile(90));
+        o.addProperty("p99", d.getPercentile(99));
+        o.addProperty("p999", d.getPercentile(99.9));
+        o.addProperty("max", d.getMax());
+        return o;
+    }
+
+    private int getInt(String option)
+    {
+        return Integer.parseInt(config.get(option));
+    }
+
+    private double getDouble(String option)
+    {
+        return Double.parseDouble(config.get(option));
+    }
+
+    private static void sleep(long millis, int nanos)
+    {
+        try{
+            Thread.sleep(millis, nanos);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * parses --name=value options, filling in defaults for anything missing
+     * @param args
+     * @return the options, or null if --help was given
+     */
+    static Map<String,String> parseArgs(String[] args)
+    {
+        Map<String,String> config = new TreeMap<String,String>();
+        for(String[] o: OPTIONS){
+            config.put(o[0], o[1]);
+        }
+        for(String arg: args){
+            if(arg.equals("--help") || arg.equals("-h")){
+                return null;
+            }
+            int eq = arg.indexOf('=');
+            if(!arg.startsWith("--") || eq<0){
+                throw new IllegalArgumentException("bad option " + arg);
+            }
+            String name = arg.substring(2, eq);
+            if(!config.containsKey(name)){
+                throw new IllegalArgumentException("unknown option " + name);
+            }
+            config.put(name, arg.substring(eq+1));
+        }
+        return config;
+    }
+
+    private static void usage()
+    {
+        System.err.println("usage: LoadTest [--option=value ...]");
+        for(String[] o: OPTIONS){
+            System.err.println("  --" + o[0] + " (default '" + o[1] + "') " + o[2]);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ryanjustus.amazonsqs.loadtest;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ResponseMetadata;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AddPermissionRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.RemovePermissionRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for AmazonSQS, used by the load tester to measure the
+ * client without a real endpoint.  Messages follow the AmazonSQS visibility
+ * timeout rules, and each call can be given extra latency, a chance of being
+ * throttled and a chance of delivering a message twice.
+ * @author ryan
+ */
+public class LocalSQS implements AmazonSQS {
+
+    /** longest time (seconds) a message can stay hidden after it is received */
+    private static final int MAX_VISIBILITY_TIMEOUT=43200;
+
+    private final Map<String,LocalQueue> queues = new TreeMap<String,LocalQueue>();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final Random random = new Random();
+    private int latencyMillis;
+    private int latencyJitterMillis;
+    private double throttleRate;
+    private double duplicateRate;
+
+    /**
+     * @param latencyMillis fixed latency added to every call
+     * @param latencyJitterMillis up to this much random latency is added on top of latencyMillis
+     */
+    public void setLatency(int latencyMillis, int latencyJitterMillis)
+    {
+        this.latencyMillis=latencyMillis;
+        this.latencyJitterMillis=latencyJitterMillis;
+    }
+
+    /**
+     * @param rate fraction (0-1) of calls that fail with a Throttling error
+     */
+    public void setThrottleRate(double rate)
+    {
+        this.throttleRate=rate;
+    }
+
+    /**
+     * @param rate fraction (0-1) of received messages that are left visible so
+     * the next receive delivers them again
+     */
+    public void setDuplicateRate(double rate)
+    {
+        this.duplicateRate=rate;
+    }
+
+    /**
+     * @return number of calls that were throttled
+     */
+    public long getNumThrottled()
+    {
+        return throttled.get();
+    }
+
+    /**
+     * @return number of messages that were deliberately delivered twice
+     */
+    public long getNumDuplicates()
+    {
+        return duplicates.get();
+    }
+
+    public void setEndpoint(String endpoint) throws IllegalArgumentException {
+    }
+
+    public ListQueuesResult listQueues(ListQueuesRequest req) {
+        call();
+        List<String> urls = new ArrayList<String>();
+        synchronized(queues){
+            for(String url: queues.keySet()){
+                String prefix = req.getQueueNamePrefix();
+                if(prefix==null || queues.get(url).name.startsWith(prefix)){
+                    urls.add(url);
+                }
+            }
+        }
+        return new ListQueuesResult().withQueueUrls(urls);
+    }
+
+    public ListQueuesResult listQueues() {
+        return listQueues(new ListQueuesRequest());
+    }
+
+    public CreateQueueResult createQueue(CreateQueueRequest req) {
+        call();
+        String url = "local://" + req.getQueueName();
+        synchronized(queues){
+            if(!queues.containsKey(url)){
+                LocalQueue q = new LocalQueue(req.getQueueName());
+                if(req.getDefaultVisibilityTimeout()!=null){
+                    q.visibilityTimeout=req.getDefaultVisibilityTimeout();
+                }
+                queues.put(url, q);
+            }
+        }
+        return new CreateQueueResult().withQueueUrl(url);
+    }
+
+    public void deleteQueue(DeleteQueueRequest req) {
+        call();
+        synchronized(queues){
+            queues.remove(req.getQueueUrl());
+        }
+    }
+
+    public void setQueueAttributes(SetQueueAttributesRequest req) {
+        call();
+        LocalQueue q = getQueue(req.getQueueUrl());
+        String timeout = req.getAttributes().get("VisibilityTimeout");
+        if(timeout!=null){
+            synchronized(q){
+                q.visibilityTimeout=Integer.parseInt(timeout);
+            }
+        }
+    }
+
+    public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest req) {
+        call();
+        LocalQueue q = getQueue(req.getQueueUrl());
+        Map<String,String> attrs = new HashMap<String,String>();
+        synchronized(q){
+            q.releaseExpired(System.currentTimeMillis());
+            attrs.put("ApproximateNumberOfMessages", String.valueOf(q.numVisible));
+            attrs.put("ApproximateNumberOfMessagesNotVisible", String.valueOf(q.messages.size()-q.numVisible));
+            attrs.put("VisibilityTimeout", String.valueOf(q.visibilityTimeout));
+        }
+        return new GetQueueAttributesResult().withAttributes(attrs);
+    }
+
+    public SendMessageResult sendMessage(SendMessageRequest req) {
+        call();
+        LocalQueue q = getQueue(req.getQueueUrl());
+        LocalMessage m = new LocalMessage(String.valueOf(ids.incrementAndGet()), req.getMessageBody());
+        synchronized(q){
+            q.messages.put(m.id, m);
+            q.makeVisible(m);
+        }
+        return new SendMessageResult().withMessageId(m.id);
+    }
+
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest req) {
+        call();
+        LocalQueue q = getQueue(req.getQueueUrl());
+        int max = req.getMaxNumberOfMessages()==null ? 1 : req.getMaxNumberOfMessages();
+        List<Message> result = new ArrayList<Message>();
+        synchronized(q){
+            int timeout = req.getVisibilityTimeout()==null ? q.visibilityTimeout : req.getVisibilityTimeout();
+            long now = System.currentTimeMillis();
+            q.releaseExpired(now);
+            while(result.size()<max){
+                LocalMessage m = q.visible.poll();
+                if(m==null){
+                    break;
+                }
+                if(m.visibleAt!=0 || !q.messages.containsKey(m.id)){
+                    //deleted or re-hidden since it was queued
+                    continue;
+                }
+                q.numVisible--;
+                m.receiveCount++;
+                m.receivedAt=now;
+                m.receiptHandle = m.id + ":" + m.receiveCount;
+                Map<String,String> attrs = new HashMap<String,String>();
+                attrs.put("ApproximateReceiveCount", String.valueOf(m.receiveCount));
+                result.add(new Message().withMessageId(m.id).withBody(m.body)
+                        .withReceiptHandle(m.receiptHandle).withAttributes(attrs));
+                if(duplicateRate>0 && nextDouble()<duplicateRate){
+                    //put it straight back at the front so the next receive gets it again
+                    duplicates.incrementAndGet();
+                    q.makeVisible(m);
+                    q.visible.removeLast();
+                    q.visible.addFirst(m);
+                    break;
+                }else{
+                    q.hide(m, now+1000L*timeout);
+                }
+            }
+        }
+        return new ReceiveMessageResult().withMessages(result);
+    }
+
+    public void deleteMessage(DeleteMessageRequest req) {
+        call();
+        LocalQueue q = getQueue(req.getQueueUrl());
+        synchronized(q){
+            LocalMessage m = q.messages.remove(idOf(req.getReceiptHandle()));
+            if(m!=null && m.visibleAt==0){
+                q.numVisible--;
+            }
+        }
+    }
+
+    public void changeMessageVisibility(ChangeMessageVisibilityRequest req) {
+        call();
+        LocalQueue q = getQueue(req.getQueueUrl());
+        synchronized(q){
+            LocalMessage m = q.messages.get(idOf(req.getReceiptHandle()));
+            if(m==null || !req.getReceiptHandle().equals(m.receiptHandle)){
+                throw error("ReceiptHandleIsInvalid", "The receipt handle is no longer valid", 400);
+            }
+            if(req.getVisibilityTimeout()<=0){
+                if(m.visibleAt!=0){
+                    q.makeVisible(m);
+                }
+            }else{
+                long until = System.currentTimeMillis()+1000L*req.getVisibilityTimeout();
+                if(until>m.receivedAt+1000L*MAX_VISIBILITY_TIMEOUT){
+                    throw error("InvalidParameterValue", "Total VisibilityTimeout for the message is beyond the limit ["
+                            + MAX_VISIBILITY_TIMEOUT + " seconds]", 400);
+                }
+                if(m.visibleAt==0){
+                    q.numVisible--;
+                }
+                q.hide(m, until);
+            }
+        }
+    }
+
+    public void addPermission(AddPermissionRequest req) {
+        call();
+    }
+
+    public void removePermission(RemovePermissionRequest req) {
+        call();
+    }
+
+    public void shutdown() {
+    }
+
+    public ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest req) {
+        return null;
+    }
+
+    /**
+     * applies the configured latency and throttling to a call
+     */
+    private void call()
+    {
+        int delay = latencyMillis;
+        if(latencyJitterMillis>0){
+            synchronized(random){
+                delay+=random.nextInt(latencyJitterMillis+1);
+            }
+        }
+        if(delay>0){
+            try{
+                Thread.sleep(delay);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(throttleRate>0 && nextDouble()<throttleRate){
+            throttled.incrementAndGet();
+            throw error("Throttling", "Rate exceeded", 400);
+        }
+    }
+
+    private double nextDouble()
+    {
+        synchronized(random){
+            return random.nextDouble();
+        }
+    }
+
+    private LocalQueue getQueue(String url)
+    {
+        synchronized(queues){
+            LocalQueue q = queues.get(url);
+            if(q==null){
+                throw error("AWS.SimpleQueueService.NonExistentQueue", "The specified queue does not exist", 400);
+            }
+            return q;
+        }
+    }
+
+    private static String idOf(String receiptHandle)
+    {
+        int i = receiptHandle.indexOf(':');
+        return i<0 ? receiptHandle : receiptHandle.substring(0, i);
+    }
+
+    private static AmazonServiceException error(String code, String message, int status)
+    {
+        AmazonServiceException e = new AmazonServiceException(message);
+        e.setErrorCode(code);
+        e.setStatusCode(status);
+        e.setServiceName("AmazonSQS");
+        return e;
+    }
+
+    private static class LocalMessage
+    {
+        final String id;
+        final String body;
+        String receiptHandle;
+        int receiveCount;
+        long receivedAt;
+        /** 0 while the message is visible */
+        long visibleAt;
+
+        LocalMessage(String id, String body)
+        {
+            this.id=id;
+            this.body=body;
+        }
+    }
+
+    /**
+     * Visible messages are kept in arrival order, hidden ones in order of when
+     * they become visible again.  Entries are removed lazily, so a message may be
+     * in either structure after it has been deleted or moved; visibleAt decides
+     * which entry is current.
+     */
+    private static class LocalQueue
+    {
+        final String name;
+        final Map<String,LocalMessage> messages = new HashMap<String,LocalMessage>();
+        final LinkedList<LocalMessage> visible = new LinkedList<LocalMessage>();
+        final java.util.PriorityQueue<Hidden> hidden = new java.util.PriorityQueue<Hidden>(16, new Comparator<Hidden>(){
+            public int compare(Hidden a, Hidden b) {
+                return a.until<b.until ? -1 : (a.until==b.until ? 0 : 1);
+            }
+        });
+        int visibilityTimeout=30;
+        int numVisible;
+
+        LocalQueue(String name)
+        {
+            this.name=name;
+        }
+
+        void makeVisible(LocalMessage m)
+        {
+            m.visibleAt=0;
+            visible.add(m);
+            numVisible++;
+        }
+
+        void hide(LocalMessage m, long until)
+        {
+            m.visibleAt=until;
+            hidden.add(new Hidden(m, until));
+        }
+
+        void releaseExpired(long now)
+        {
+            Hidden h;
+            while((h=hidden.peek())!=null && h.until<=now){
+                hidden.poll();
+                if(h.m.visibleAt==h.until && messages.containsKey(h.m.id)){
+                    makeVisible(h.m);
+                }
+            }
+        }
+    }
+
+    private static class Hidden
+    {
+        final LocalMessage m;
+        final long until;
+
+        Hidden(LocalMessage m, long until)
+        {
+            this.m=m;
+            this.until=until;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ryanjustus.amazonsqs;
+
+import com.ryanjustus.amazonsqs.loadtest.LocalSQS;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs MultiQueueConsumer against queues backed by LocalSQS
+ * @author ryan
+ */
+public class MultiQueueConsumerTest {
+
+    private LocalSQS sqs;
+    private List<BasicQueue> queues;
+    private MultiQueueConsumer consumer;
+
+    @Before
+    public void setUp()
+    {
+        sqs = new LocalSQS();
+        queues = new ArrayList<BasicQueue>();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if(consumer!=null){
+            consumer.shutdown(5, TimeUnit.SECONDS);
+        }
+        for(BasicQueue q: queues){
+            q.shutdown(0, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSingleQueueDrains() throws InterruptedException
+    {
+        BasicQueue q = queue("drain", 50);
+        consumer = new MultiQueueConsumer(2);
+        consumer.register(q, 1);
+        CountDownLatch done = new CountDownLatch(50);
+        consumer.start(new CountingHandler(done, 0));
+        assertTrue("tasks left: " + done.getCount(), done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBusyQueueNotThrottledByIdleQueues() throws InterruptedException
+    {
+        consumer = new MultiQueueConsumer(2);
+        //long enough that the busy queue can't be waiting on the idle ones' backoff
+        consumer.setBackoff(5000, 20000);
+        for(int i=0;i<5;i++){
+            consumer.register(queue("idle" + i, 0), 1);
+        }
+        consumer.register(queue("busy", 200), 1);
+        CountDownLatch done = new CountDownLatch(200);
+        consumer.start(new CountingHandler(done, 0));
+        assertTrue("tasks left: " + done.getCount(), done.await(4, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWeightedShare() throws InterruptedException
+    {
+        BasicQueue heavy = queue("heavy", 3000);
+        BasicQueue light = queue("light", 3000);
+        consumer = new MultiQueueConsumer(4);
+        consumer.register(heavy, 2);
+        consumer.register(light, 1);
+        consumer.start(new CountingHandler(new CountDownLatch(0), 5));
+        Thread.sleep(1000);
+        Map<TaskQueue,MultiQueueConsumer.QueueStats> stats = consumer.getStats();
+        long h = stats.get(heavy).getNumReceived();
+        long l = stats.get(light).getNumReceived();
+        assertTrue("too few tasks to compare: " + h + "/" + l, l>=50 && h<3000);
+        double ratio = (double)h/l;
+        assertTrue("expected about 2:1 but was " + ratio, ratio>1.6 && ratio<2.4);
+    }
+
+    @Test
+    public void testWorkerSurvivesHandlerError() throws InterruptedException
+    {
+        BasicQueue q = queue("error", 10);
+        consumer = new MultiQueueConsumer(1);
+        consumer.register(q, 1);
+        final CountDownLatch done = new CountDownLatch(10);
+        consumer.start(new TaskHandler(){
+            public void handle(TaskQueue queue, Task t) throws Exception {
+                done.countDown();
+                throw new Error("handler error");
+            }
+        });
+        assertTrue("tasks left: " + done.getCount(), done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(10, consumer.getStats().get(q).getNumFailed());
+    }
+
+    private BasicQueue queue(String name, int numTasks)
+    {
+        BasicQueue q = BasicQueue.getInstance(name, sqs);
+        queues.add(q);
+        for(int i=0;i<numTasks;i++){
+            Map<String,String> attrs = new HashMap<String,String>();
+            attrs.put("i", String.valueOf(i));
+            q.addTask(attrs);
+        }
+        return q;
+    }
+
+    private static class CountingHandler implements TaskHandler
+    {
+        private final CountDownLatch done;
+        private final long sleepMillis;
+
+        CountingHandler(CountDownLatch done, long sleepMillis)
+        {
+            this.done=done;
+            this.sleepMillis=sleepMillis;
+        }
+
+        public void handle(TaskQueue queue, Task t) throws Exception {
+            if(sleepMillis>0){
+                Thread.sleep(sleepMillis);
+            }
+            done.countDown();
+        }
+    }
+}